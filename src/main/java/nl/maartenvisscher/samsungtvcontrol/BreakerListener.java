@@ -0,0 +1,19 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+/**
+ * Listener for state transitions of a {@link CircuitBreaker}.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public interface BreakerListener {
+
+    /**
+     * Called after the breaker changed state, on the thread which caused the
+     * transition. Should return quickly.
+     *
+     * @param breaker the breaker.
+     * @param from the previous state.
+     * @param to the new state.
+     */
+    void stateChanged(CircuitBreaker breaker, BreakerState from, BreakerState to);
+}
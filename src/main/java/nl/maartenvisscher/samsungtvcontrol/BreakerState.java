@@ -0,0 +1,24 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+/**
+ * State of a {@link CircuitBreaker}.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public enum BreakerState {
+
+    /**
+     * TV is considered reachable, connections and key codes are allowed.
+     */
+    CLOSED,
+    /**
+     * TV failed repeatedly, connections and key codes fail fast until the
+     * backoff time has passed.
+     */
+    OPEN,
+    /**
+     * Backoff time has passed and one probe is in progress, other attempts
+     * fail fast until the probe succeeded or failed.
+     */
+    HALF_OPEN;
+}
@@ -0,0 +1,292 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Failure detector and circuit breaker for one television. After a number of
+ * consecutive connect or read failures the breaker opens and attempts fail
+ * fast with a {@link CircuitOpenException}. When the backoff time has passed,
+ * the next attempt is let through as probe (half-open). A successful probe
+ * closes the breaker, a failed probe opens it again with a doubled backoff
+ * time up to the maximum. A probe which is not recorded within the probe
+ * timeout counts as failed.
+ * <p>
+ * Every permitted attempt gets a token from {@link #acquire()} which is
+ * passed when recording its outcome. The token changes on every transition,
+ * so outcomes of attempts from before the transition, like a late outcome of
+ * a timed out probe, are ignored.
+ * <p>
+ * Pass a breaker to
+ * {@link SamsungRemote#SamsungRemote(InetAddress, boolean, CircuitBreaker)}
+ * to use it, or get one per address from {@link CircuitBreakers}.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public class CircuitBreaker {
+
+    private final InetAddress address;
+    private final int threshold;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final long probeTimeout;
+    private final List<BreakerListener> listeners;
+
+    private BreakerState state;
+    private int failures; // Consecutive failures.
+    private long backoff; // Current backoff time in milliseconds.
+    private long retryTime; // Time at which an open breaker lets a probe through.
+    private long probeDeadline; // Time at which a half-open breaker opens again.
+    private long generation; // Token of the current attempts, changes on every transition.
+
+    /**
+     * Creates a breaker which opens after 3 failures, with a backoff time
+     * starting at 5 seconds up to 5 minutes and a probe timeout of 10
+     * seconds.
+     *
+     * @param address the television address.
+     */
+    public CircuitBreaker(InetAddress address) {
+        this(address, 3, 5 * 1000, 5 * 60 * 1000, 10 * 1000);
+    }
+
+    /**
+     * Creates a breaker.
+     *
+     * @param address the television address.
+     * @param threshold the number of consecutive failures which opens the
+     * breaker.
+     * @param initialBackoff the backoff time in milliseconds after opening.
+     * @param maxBackoff the maximum backoff time in milliseconds.
+     * @param probeTimeout the time in milliseconds after which an unfinished
+     * probe counts as failed.
+     */
+    public CircuitBreaker(InetAddress address, int threshold, long initialBackoff, long maxBackoff, long probeTimeout) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold should be at least 1.");
+        }
+        this.address = address;
+        this.threshold = threshold;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.probeTimeout = probeTimeout;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.state = BreakerState.CLOSED;
+        this.backoff = initialBackoff;
+    }
+
+    /**
+     * Returns the television address.
+     *
+     * @return the address.
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the current state.
+     *
+     * @return the state.
+     */
+    public BreakerState getState() {
+        checkProbe();
+        synchronized (this) {
+            return state;
+        }
+    }
+
+    /**
+     * Returns the number of consecutive failures.
+     *
+     * @return the number of failures.
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns the time at which an open breaker lets the next probe through.
+     *
+     * @return the time in milliseconds since the epoch, or 0 when the breaker
+     * is not open.
+     */
+    public long getRetryTime() {
+        checkProbe();
+        synchronized (this) {
+            return state == BreakerState.OPEN ? retryTime : 0;
+        }
+    }
+
+    /**
+     * Returns whether an attempt would be let through right now, without
+     * changing the state. Can be used to route around unreachable
+     * televisions.
+     *
+     * @return true when the breaker is closed or a probe is due.
+     */
+    public boolean isAvailable() {
+        checkProbe();
+        synchronized (this) {
+            return state == BreakerState.CLOSED
+                    || (state == BreakerState.OPEN && System.currentTimeMillis() >= retryTime);
+        }
+    }
+
+    /**
+     * Adds a listener for state transitions.
+     *
+     * @param listener the listener.
+     */
+    public void addListener(BreakerListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener the listener.
+     */
+    public void removeListener(BreakerListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns whether the token belongs to the probe of the breaker, which is
+     * still half-open and waiting for the outcome of that probe.
+     *
+     * @param token the token of the attempt.
+     * @return true when the attempt is the current probe.
+     */
+    public boolean isProbe(long token) {
+        checkProbe();
+        synchronized (this) {
+            return state == BreakerState.HALF_OPEN && token == generation;
+        }
+    }
+
+    /**
+     * Asks permission for an attempt. When the breaker is open and the
+     * backoff time has passed, it becomes half-open and the caller does the
+     * probe. Every permitted attempt should be followed by
+     * {@link #recordSuccess(long)} or {@link #recordFailure(long)} with the
+     * returned token.
+     *
+     * @return the token of the attempt.
+     * @throws CircuitOpenException if the breaker is open or a probe is in
+     * progress.
+     */
+    public long acquire() throws CircuitOpenException {
+        checkProbe();
+        BreakerState from;
+        long token;
+        synchronized (this) {
+            from = state;
+            if (state == BreakerState.CLOSED) {
+                return generation;
+            }
+            if (state == BreakerState.HALF_OPEN) {
+                throw new CircuitOpenException("Circuit for " + address.getHostAddress() + " is half-open, probe in progress.");
+            }
+            long now = System.currentTimeMillis();
+            if (now < retryTime) {
+                throw new CircuitOpenException("Circuit for " + address.getHostAddress() + " is open, retry in " + (retryTime - now) + " ms.");
+            }
+            state = BreakerState.HALF_OPEN;
+            probeDeadline = now + probeTimeout;
+            token = ++generation;
+        }
+        fire(from, BreakerState.HALF_OPEN);
+        return token;
+    }
+
+    /**
+     * Records a successful attempt, which closes the breaker. Ignored when
+     * the breaker changed state since the attempt was permitted.
+     *
+     * @param token the token of the attempt.
+     */
+    public void recordSuccess(long token) {
+        BreakerState from;
+        synchronized (this) {
+            if (token != generation) {
+                return; // Late outcome, for instance of a timed out probe.
+            }
+            from = state;
+            if (from != BreakerState.CLOSED) {
+                generation++;
+            }
+            failures = 0;
+            backoff = initialBackoff;
+            state = BreakerState.CLOSED;
+        }
+        if (from != BreakerState.CLOSED) {
+            fire(from, BreakerState.CLOSED);
+        }
+    }
+
+    /**
+     * Records a failed attempt. Opens the breaker when the threshold is
+     * reached or when the probe failed. Ignored when the breaker changed
+     * state since the attempt was permitted.
+     *
+     * @param token the token of the attempt.
+     */
+    public void recordFailure(long token) {
+        BreakerState from;
+        synchronized (this) {
+            if (token != generation) {
+                return; // Late outcome, for instance of a timed out probe.
+            }
+            from = state;
+            failures++;
+            if (state == BreakerState.HALF_OPEN) {
+                backoff = Math.min(backoff * 2, maxBackoff);
+            } else if (state == BreakerState.CLOSED && failures >= threshold) {
+                backoff = initialBackoff;
+            } else {
+                return; // Still closed.
+            }
+            state = BreakerState.OPEN;
+            retryTime = System.currentTimeMillis() + backoff;
+            generation++;
+        }
+        fire(from, BreakerState.OPEN);
+    }
+
+    /**
+     * Opens the breaker again with a doubled backoff time when the probe did
+     * not finish before the deadline.
+     */
+    private void checkProbe() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (state != BreakerState.HALF_OPEN || now < probeDeadline) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, maxBackoff);
+            state = BreakerState.OPEN;
+            retryTime = now + backoff;
+            generation++; // The outcome of the lost probe is ignored.
+        }
+        fire(BreakerState.HALF_OPEN, BreakerState.OPEN);
+    }
+
+    /**
+     * Notifies the listeners of a transition, outside the lock.
+     *
+     * @param from the previous state.
+     * @param to the new state.
+     */
+    private void fire(BreakerState from, BreakerState to) {
+        for (BreakerListener listener : listeners) {
+            listener.stateChanged(this, from, to);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker[" + address.getHostAddress() + ", " + getState() + "]";
+    }
+}
@@ -0,0 +1,120 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps one {@link CircuitBreaker} per television address, created on first
+ * use with the same settings. Listeners added here are added to every
+ * breaker.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public class CircuitBreakers {
+
+    private final int threshold;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final long probeTimeout;
+    private final ConcurrentMap<InetAddress, CircuitBreaker> breakers;
+    private final List<BreakerListener> listeners;
+
+    /**
+     * Creates breakers which open after 3 failures, with a backoff time
+     * starting at 5 seconds up to 5 minutes and a probe timeout of 10
+     * seconds.
+     */
+    public CircuitBreakers() {
+        this(3, 5 * 1000, 5 * 60 * 1000, 10 * 1000);
+    }
+
+    /**
+     * Creates breakers with the given settings.
+     *
+     * @param threshold the number of consecutive failures which opens a
+     * breaker.
+     * @param initialBackoff the backoff time in milliseconds after opening.
+     * @param maxBackoff the maximum backoff time in milliseconds.
+     * @param probeTimeout the time in milliseconds after which an unfinished
+     * probe counts as failed.
+     * @see CircuitBreaker#CircuitBreaker(InetAddress, int, long, long, long)
+     */
+    public CircuitBreakers(int threshold, long initialBackoff, long maxBackoff, long probeTimeout) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold should be at least 1.");
+        }
+        this.threshold = threshold;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.probeTimeout = probeTimeout;
+        this.breakers = new ConcurrentHashMap<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Returns the breaker for the address, creating it when needed.
+     *
+     * @param address the television address.
+     * @return the breaker.
+     */
+    public CircuitBreaker get(InetAddress address) {
+        CircuitBreaker breaker = breakers.get(address);
+        if (breaker == null) {
+            synchronized (this) { // Makes sure new breakers get all listeners.
+                breaker = breakers.get(address);
+                if (breaker == null) {
+                    breaker = new CircuitBreaker(address, threshold, initialBackoff, maxBackoff, probeTimeout);
+                    for (BreakerListener listener : listeners) {
+                        breaker.addListener(listener);
+                    }
+                    breakers.put(address, breaker);
+                }
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Returns whether an attempt to the address would be let through right
+     * now, true for addresses without a breaker yet.
+     *
+     * @param address the television address.
+     * @return whether the television is available.
+     * @see CircuitBreaker#isAvailable()
+     */
+    public boolean isAvailable(InetAddress address) {
+        CircuitBreaker breaker = breakers.get(address);
+        return breaker == null || breaker.isAvailable();
+    }
+
+    /**
+     * Returns all breakers which are currently not closed.
+     *
+     * @return the open and half-open breakers.
+     */
+    public List<CircuitBreaker> getTripped() {
+        List<CircuitBreaker> tripped = new ArrayList<>();
+        for (CircuitBreaker breaker : breakers.values()) {
+            if (breaker.getState() != BreakerState.CLOSED) {
+                tripped.add(breaker);
+            }
+        }
+        return tripped;
+    }
+
+    /**
+     * Adds a listener to all current and future breakers.
+     *
+     * @param listener the listener.
+     */
+    public synchronized void addListener(BreakerListener listener) {
+        listeners.add(listener);
+        for (CircuitBreaker breaker : breakers.values()) {
+            breaker.addListener(listener);
+        }
+    }
+}
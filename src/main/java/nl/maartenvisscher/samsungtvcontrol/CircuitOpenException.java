@@ -0,0 +1,23 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a connection or key code is refused because the circuit
+ * breaker of the television is open.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates the exception.
+     *
+     * @param message the detail message.
+     */
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+}
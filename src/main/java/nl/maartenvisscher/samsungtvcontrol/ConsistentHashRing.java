@@ -0,0 +1,90 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Consistent hash ring which maps keys onto nodes. Every node is placed on
+ * the ring a number of times (virtual nodes) so keys are spread evenly, and
+ * adding or removing a node only moves the keys of that node.
+ *
+ * @param <T> the node type, its toString() value is used for hashing.
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public class ConsistentHashRing<T> {
+
+    private final int replicas;
+    private final TreeMap<Long, T> ring;
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param replicas the number of virtual nodes per node.
+     */
+    public ConsistentHashRing(int replicas) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("Replicas should be at least 1.");
+        }
+        this.replicas = replicas;
+        this.ring = new TreeMap<>();
+    }
+
+    /**
+     * Adds a node to the ring, does nothing when it is already present.
+     *
+     * @param node the node to add.
+     */
+    public synchronized void add(T node) {
+        for (int i = 0; i < replicas; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    /**
+     * Removes a node from the ring.
+     *
+     * @param node the node to remove.
+     */
+    public synchronized void remove(T node) {
+        for (int i = 0; i < replicas; i++) {
+            long hash = hash(node + "#" + i);
+            if (node.equals(ring.get(hash))) {
+                ring.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * Returns the node which owns the key, that is the first node found
+     * clockwise from the key hash.
+     *
+     * @param key the key.
+     * @return the owner node or null when the ring is empty.
+     */
+    public synchronized T get(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        SortedMap<Long, T> tail = ring.tailMap(hash(key));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Hashes the string to a position on the ring using the first 8 bytes of
+     * its MD5 digest.
+     *
+     * @param string the string to hash.
+     * @return the position on the ring.
+     */
+    private long hash(String string) {
+        byte[] digest = DigestUtils.md5(string.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
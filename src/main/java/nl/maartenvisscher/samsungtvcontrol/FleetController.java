@@ -0,0 +1,850 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Controls a fleet of televisions from multiple processes (nodes). Every
+ * television is assigned to one node using consistent hashing of its address,
+ * only the owner node keeps an authenticated {@link SamsungRemote} session
+ * with it. Key codes sent to a television owned by another node are forwarded
+ * to that node over a simple socket channel.
+ * <p>
+ * Each node should be given the same list of nodes using
+ * {@link #join(FleetNode)}, nodes can be added and removed at any time. Only
+ * the televisions of the added or removed node change owner, sessions that
+ * are no longer owned are closed. A node refuses forwarded key codes for
+ * televisions it does not own according to its own view of the ring.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public class FleetController {
+
+    private final int REPLICAS = 128; // Virtual nodes per node on the hash ring.
+    private final int SO_TIMEOUT = 3 * 1000; // Node connect timeout in milliseconds.
+    private final int FORWARD_TIMEOUT = 310 * 1000; // Time to wait for a forwarded key code, the owner might be authenticating.
+    private final long ACCEPT_RETRY_DELAY = 100; // Delay after a failed accept in milliseconds.
+    private final int MAX_CONNECTIONS = 64; // Accepted node connections, more are dropped.
+    private final int WORKERS = 32; // Threads handling forwarded key codes.
+    private final int QUEUE_SIZE = 256; // Forwarded key codes waiting for a worker, more are refused.
+    private final int MAX_PENDING_PER_TV = 4; // Forwarded key codes queued or running per television, more are refused.
+
+    private final byte STATUS_OK = 0; // Forward response status.
+    private final byte STATUS_FAILED = 1;
+    private final byte STATUS_NOT_OWNER = 2;
+    private final byte STATUS_CIRCUIT_OPEN = 3; // Followed by the milliseconds until the breaker on the owner node lets a probe through.
+
+    private final FleetNode self;
+    private final String name;
+    private final ConsistentHashRing<FleetNode> ring;
+    private final Map<InetAddress, Session> sessions;
+    private final Map<FleetNode, PeerLink> peers;
+    private final Set<FleetNode> members; // Nodes on the ring, only their addresses may connect.
+    private final Set<Socket> accepted; // Node connections accepted by this node.
+    private final ThreadPoolExecutor executor; // Handles forwarded key codes.
+    private final Map<String, AtomicInteger> pending; // Forwarded key codes queued or running, per television.
+    private final CircuitBreakers breakers;
+    private final Map<InetAddress, Long> openElsewhere; // Retry times of open breakers on other nodes.
+    private ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    /**
+     * Creates a fleet controller for the given local node. The local node is
+     * added to the ring immediately, call {@link #start()} to accept key codes
+     * from other nodes.
+     *
+     * @param self the local node.
+     * @param name the name for this controller, which is displayed on the
+     * television when authenticating.
+     */
+    public FleetController(final FleetNode self, String name) {
+        this.self = self;
+        this.name = name;
+        this.ring = new ConsistentHashRing<>(REPLICAS);
+        this.sessions = new ConcurrentHashMap<>();
+        this.peers = new ConcurrentHashMap<>();
+        this.members = Collections.newSetFromMap(new ConcurrentHashMap<FleetNode, Boolean>());
+        this.accepted = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+        this.executor = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "fleet-" + self.getId() + "-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.pending = new ConcurrentHashMap<>();
+        this.breakers = new CircuitBreakers();
+        this.openElsewhere = new ConcurrentHashMap<>();
+        ring.add(self);
+    }
+
+    /**
+     * Starts listening for forwarded key codes on the local node address.
+     *
+     * @throws IOException if an I/O error occurs when opening the socket, or
+     * when the controller is closed.
+     */
+    public synchronized void start() throws IOException {
+        if (closed) {
+            throw new IOException("Fleet controller is closed.");
+        }
+        if (serverSocket != null) {
+            return;
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.bind(self.getAddress());
+        final ServerSocket server = serverSocket;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(server);
+            }
+        }, "fleet-" + self.getId() + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Adds a node to the fleet. Sessions with televisions that moved to the
+     * new node are closed.
+     *
+     * @param node the node to add.
+     */
+    public void join(FleetNode node) {
+        ring.add(node);
+        members.add(node);
+        rebalance();
+    }
+
+    /**
+     * Removes a node from the fleet, its televisions are taken over by the
+     * remaining nodes. The local node can not be removed.
+     *
+     * @param node the node to remove.
+     */
+    public void leave(FleetNode node) {
+        if (node.equals(self)) {
+            throw new IllegalArgumentException("The local node can not leave, use close() instead.");
+        }
+        ring.remove(node);
+        members.remove(node);
+        PeerLink link = peers.remove(node);
+        if (link != null) {
+            link.close();
+        }
+        rebalance();
+    }
+
+    /**
+     * Returns the node which owns the television.
+     *
+     * @param host the television address.
+     * @return the owner node.
+     */
+    public FleetNode getOwner(InetAddress host) {
+        return ring.get(host.getHostAddress());
+    }
+
+    /**
+     * Returns whether the local node owns the television.
+     *
+     * @param host the television address.
+     * @return true when the television is controlled from this node.
+     */
+    public boolean isOwner(InetAddress host) {
+        return self.equals(getOwner(host));
+    }
+
+    /**
+     * Returns the circuit breakers for the televisions owned by this node.
+     * Sessions fail fast with a {@link CircuitOpenException} while the
+     * breaker of their television is open. Breakers of televisions owned by
+     * other nodes are kept on those nodes, see {@link #isAvailable}.
+     *
+     * @return the circuit breakers.
+     */
+    public CircuitBreakers getBreakers() {
+        return breakers;
+    }
+
+    /**
+     * Returns whether a key code for the television would be attempted right
+     * now. For televisions owned by other nodes this is known from earlier
+     * forwarded key codes: when the owner reported an open breaker, key codes
+     * fail fast on this node too until its retry time.
+     *
+     * @param host the television address.
+     * @return false when the breaker of the television is known to be open.
+     */
+    public boolean isAvailable(InetAddress host) {
+        if (isOwner(host)) {
+            return breakers.isAvailable(host);
+        }
+        Long retryTime = openElsewhere.get(host);
+        return retryTime == null || System.currentTimeMillis() >= retryTime;
+    }
+
+    /**
+     * Sends a key code to the television, either directly when this node owns
+     * it or by forwarding it to the owner node. Blocks until the television
+     * confirmed delivery.
+     *
+     * @param host the television address.
+     * @param keycode the key code to send.
+     * @throws IOException if an I/O error occurs on the television or node
+     * connection, or when authentication was not allowed.
+     */
+    public void keycode(InetAddress host, Keycode keycode) throws IOException {
+        keycode(host, keycode.name());
+    }
+
+    /**
+     * Sends a key code to the television, either directly when this node owns
+     * it or by forwarding it to the owner node. Blocks until the television
+     * confirmed delivery.
+     *
+     * @param host the television address.
+     * @param keycode the key code to send.
+     * @throws IOException if an I/O error occurs on the television or node
+     * connection, or when authentication was not allowed.
+     */
+    public void keycode(InetAddress host, String keycode) throws IOException {
+        while (true) {
+            FleetNode owner = getOwner(host);
+            if (!owner.equals(self)) {
+                forward(owner, host, keycode);
+                return;
+            }
+            try {
+                localKeycode(host, keycode);
+                return;
+            } catch (NotOwnerException e) {
+                // The ring changed meanwhile, look up the new owner.
+            }
+        }
+    }
+
+    /**
+     * Opens and authenticates a session with a television. Can be overridden
+     * to supply sessions in another way.
+     *
+     * @param host the television address.
+     * @return the authenticated session.
+     * @throws IOException if an I/O error occurs or authentication was not
+     * allowed.
+     */
+    protected SamsungRemote openSession(InetAddress host) throws IOException {
+        SamsungRemote remote = new SamsungRemote(host, false, breakers.get(host));
+        TVReply reply;
+        try {
+            reply = remote.authenticate(name);
+        } catch (IOException e) {
+            remote.close();
+            throw e;
+        }
+        if (reply != TVReply.ALLOWED) {
+            remote.close();
+            throw new IOException("Authentication with " + host.getHostAddress() + " failed: " + reply + ".");
+        }
+        return remote;
+    }
+
+    /**
+     * Sends the key code using the local session with the television, opening
+     * it when needed. The session is dropped when an I/O error occurs so it
+     * will be reopened for the next key code. Ownership is checked while
+     * holding the session, so a session is never opened for a television
+     * which moved to another node.
+     *
+     * @param host the television address.
+     * @param keycode the key code to send.
+     * @throws NotOwnerException if this node does not own the television.
+     * @throws IOException if an I/O error occurs or the controller is closed.
+     */
+    private void localKeycode(InetAddress host, String keycode) throws IOException {
+        while (true) {
+            Session session = sessions.get(host);
+            if (session == null) {
+                Session created = new Session();
+                session = sessions.putIfAbsent(host, created);
+                if (session == null) {
+                    session = created;
+                }
+            }
+            synchronized (session) {
+                if (closed) {
+                    session.retire();
+                    throw new IOException("Fleet controller is closed.");
+                }
+                if (session.retired) {
+                    continue; // Removed by a rebalance meanwhile, get the current one.
+                }
+                if (!isOwner(host)) {
+                    sessions.remove(host, session);
+                    session.retire();
+                    throw new NotOwnerException("Node " + self + " does not own " + host.getHostAddress() + ", owner is " + getOwner(host) + ".");
+                }
+                if (session.remote == null) {
+                    session.remote = openSession(host);
+                    if (session.retired || closed) {
+                        session.close(); // Retired while authenticating, check again.
+                        continue;
+                    }
+                }
+                try {
+                    session.remote.keycode(keycode);
+                    return;
+                } catch (IOException e) {
+                    session.close();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards a key code to the owner node.
+     *
+     * @param owner the owner node.
+     * @param host the television address.
+     * @param keycode the key code to send.
+     * @throws IOException if an I/O error occurs or the owner node failed to
+     * deliver the key code.
+     */
+    private void forward(FleetNode owner, InetAddress host, String keycode) throws IOException {
+        if (closed) {
+            throw new IOException("Fleet controller is closed.");
+        }
+        Long retryTime = openElsewhere.get(host);
+        if (retryTime != null) {
+            long now = System.currentTimeMillis();
+            if (now < retryTime) {
+                throw new CircuitOpenException("Circuit for " + host.getHostAddress() + " is open on node " + owner + ", retry in " + (retryTime - now) + " ms.");
+            }
+            openElsewhere.remove(host, retryTime);
+        }
+        PeerLink link = peers.get(owner);
+        if (link == null) {
+            PeerLink created = new PeerLink(owner);
+            link = peers.putIfAbsent(owner, created);
+            if (link == null) {
+                link = created;
+            }
+        }
+        try {
+            link.send(host, keycode);
+        } catch (CircuitOpenException e) {
+            long ownerRetryTime = e instanceof RemoteCircuitOpen ? ((RemoteCircuitOpen) e).retryTime : 0;
+            if (ownerRetryTime > System.currentTimeMillis()) {
+                openElsewhere.put(host, ownerRetryTime);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Retires sessions with televisions that are no longer owned by this
+     * node. Does not wait for sessions which are busy, for instance
+     * authenticating, those close themselves when done.
+     */
+    private void rebalance() {
+        for (Map.Entry<InetAddress, Session> entry : new ArrayList<>(sessions.entrySet())) {
+            if (!isOwner(entry.getKey())) {
+                sessions.remove(entry.getKey(), entry.getValue());
+                entry.getValue().retire();
+            }
+        }
+    }
+
+    /**
+     * Accepts node connections until the server socket is closed.
+     *
+     * @param server the server socket.
+     */
+    private void accept(ServerSocket server) {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(ACCEPT_RETRY_DELAY); // Prevents spinning when accept keeps failing.
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+            if (accepted.size() >= MAX_CONNECTIONS || !isMember(socket.getInetAddress())) {
+                try {
+                    socket.close(); // Too many connections, or not from a node on the ring.
+                } catch (IOException e) {
+                    // Ignore.
+                }
+                continue;
+            }
+            Thread handler = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            }, "fleet-" + self.getId() + "-handler");
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    /**
+     * Returns whether the address is the address of another node on the ring.
+     *
+     * @param address the remote address of a connection.
+     * @return true when a node on the ring has the address.
+     */
+    private boolean isMember(InetAddress address) {
+        for (FleetNode member : members) {
+            if (!member.equals(self) && address.equals(member.getAddress().getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads forwarded key codes from a node connection until it is closed.
+     * Every request is an id, the television address and the key code. The
+     * requests are handled concurrently by a bounded pool, so a slow
+     * television does not hold up key codes for other televisions. Requests
+     * are refused when too many are waiting, in total or for one television.
+     *
+     * @param socket the node connection.
+     */
+    private void handle(Socket socket) {
+        accepted.add(socket);
+        try {
+            if (closed) {
+                return;
+            }
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                final int id;
+                try {
+                    id = in.readInt();
+                } catch (EOFException e) {
+                    return; // Node closed the connection.
+                }
+                final String host = in.readUTF();
+                final String keycode = in.readUTF();
+                AtomicInteger count = pending.get(host);
+                if (count == null) {
+                    AtomicInteger created = new AtomicInteger();
+                    count = pending.putIfAbsent(host, created);
+                    if (count == null) {
+                        count = created;
+                    }
+                }
+                if (count.incrementAndGet() > MAX_PENDING_PER_TV) {
+                    count.decrementAndGet();
+                    reply(out, id, STATUS_FAILED, "Too many key codes pending for " + host + " on node " + self + ".", 0);
+                    continue;
+                }
+                final AtomicInteger running = count;
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                respond(out, id, host, keycode);
+                            } finally {
+                                running.decrementAndGet();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    running.decrementAndGet();
+                    reply(out, id, STATUS_FAILED, "Node " + self + " is busy.", 0);
+                }
+            }
+        } catch (IOException e) {
+            // Node connection broken or controller closed, the sending node will reconnect.
+        } finally {
+            accepted.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Sends a forwarded key code locally and writes the response, which is
+     * the request id and a status followed by an error message when not
+     * successful. Forwarded key codes are never forwarded again, so nodes
+     * with a different view of the ring do not forward in circles.
+     *
+     * @param out the node connection output.
+     * @param id the request id.
+     * @param host the television address.
+     * @param keycode the key code to send.
+     */
+    private void respond(DataOutputStream out, int id, String host, String keycode) {
+        byte status;
+        String message = null;
+        long retryDelay = 0;
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            try {
+                localKeycode(address, keycode);
+            } catch (CircuitOpenException e) {
+                long retryTime = breakers.get(address).getRetryTime();
+                retryDelay = Math.max(retryTime - System.currentTimeMillis(), 0); // Node clocks may differ.
+                throw e;
+            }
+            status = STATUS_OK;
+        } catch (CircuitOpenException e) {
+            status = STATUS_CIRCUIT_OPEN;
+            message = String.valueOf(e.getMessage());
+        } catch (NotOwnerException e) {
+            status = STATUS_NOT_OWNER;
+            message = e.getMessage();
+        } catch (IOException e) {
+            status = STATUS_FAILED;
+            message = String.valueOf(e.getMessage());
+        } catch (RuntimeException e) {
+            status = STATUS_FAILED;
+            message = e.toString();
+        }
+        try {
+            reply(out, id, status, message, retryDelay);
+        } catch (IOException e) {
+            // Node connection broken, the sending node fails the request.
+        }
+    }
+
+    /**
+     * Writes the response to a forwarded key code.
+     *
+     * @param out the node connection output.
+     * @param id the request id.
+     * @param status the status.
+     * @param message the error message, when not successful.
+     * @param retryDelay the milliseconds until the breaker lets a probe
+     * through, when it is open.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void reply(DataOutputStream out, int id, byte status, String message, long retryDelay) throws IOException {
+        synchronized (out) {
+            out.writeInt(id);
+            out.writeByte(status);
+            if (status != STATUS_OK) {
+                out.writeUTF(message);
+            }
+            if (status == STATUS_CIRCUIT_OPEN) {
+                out.writeLong(retryDelay);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Stops accepting forwarded key codes and closes all node and television
+     * connections. The controller can not be used anymore afterwards.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+            serverSocket = null;
+        }
+        for (Socket socket : new ArrayList<>(accepted)) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+        for (PeerLink link : new ArrayList<>(peers.values())) {
+            link.close();
+        }
+        peers.clear();
+        for (Session session : new ArrayList<>(sessions.values())) {
+            session.retire();
+        }
+        sessions.clear();
+        executor.shutdown();
+    }
+
+    /**
+     * Holder for the session with one television, also used as lock so key
+     * codes for the same television are sent one at a time. Can be retired
+     * without holding the lock.
+     */
+    private static class Session {
+
+        private volatile SamsungRemote remote;
+        private volatile boolean retired;
+
+        /**
+         * Closes the session, should be called while holding the lock.
+         */
+        private void close() {
+            SamsungRemote current = remote;
+            remote = null;
+            if (current != null) {
+                current.close();
+            }
+        }
+
+        /**
+         * Marks the session as retired and closes its socket, a key code
+         * being sent fails and a session being opened is closed afterwards.
+         */
+        private void retire() {
+            retired = true;
+            SamsungRemote current = remote;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
+    /**
+     * Link with another node, opens a connection on first use and again
+     * after an I/O error. Multiple key codes can be in flight on one
+     * connection, responses are matched to requests using the request id.
+     */
+    private class PeerLink {
+
+        private final FleetNode node;
+        private Connection connection;
+
+        private PeerLink(FleetNode node) {
+            this.node = node;
+        }
+
+        private void send(InetAddress host, String keycode) throws IOException {
+            Pending pending = new Pending();
+            Connection current = connect();
+            int id;
+            synchronized (current.out) {
+                id = current.nextId++;
+                current.pending.put(id, pending);
+                if (current.broken) { // The reader may have failed the waiting requests already.
+                    current.pending.remove(id);
+                    throw new IOException("Connection with node " + node + " lost.");
+                }
+                try {
+                    current.out.writeInt(id);
+                    current.out.writeUTF(host.getHostAddress());
+                    current.out.writeUTF(keycode);
+                    current.out.flush();
+                } catch (IOException e) {
+                    current.pending.remove(id);
+                    closeConnection(current);
+                    throw e;
+                }
+            }
+            try {
+                if (!pending.done.await(FORWARD_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    current.pending.remove(id);
+                    throw new SocketTimeoutException("Node " + node + " did not respond in time.");
+                }
+            } catch (InterruptedException e) {
+                current.pending.remove(id);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for node " + node + ".");
+            }
+            if (pending.error != null) {
+                throw pending.error;
+            }
+            if (pending.status == STATUS_CIRCUIT_OPEN) {
+                throw new RemoteCircuitOpen("Node " + node + ": " + pending.message, pending.retryTime);
+            } else if (pending.status == STATUS_NOT_OWNER) {
+                throw new IOException("Node " + node + " refused: " + pending.message);
+            } else if (pending.status != STATUS_OK) {
+                throw new IOException("Node " + node + ": " + pending.message);
+            }
+        }
+
+        /**
+         * Returns the open connection, or opens one without holding the lock
+         * so other senders are not held up by a node which is down.
+         *
+         * @return the connection.
+         * @throws IOException if an I/O error occurs when connecting.
+         */
+        private Connection connect() throws IOException {
+            synchronized (this) {
+                if (connection != null) {
+                    return connection;
+                }
+            }
+            Connection created = new Connection(node);
+            synchronized (this) {
+                if (connection == null && !closed) {
+                    connection = created;
+                    return created;
+                }
+            }
+            created.close(); // Another sender connected first, or the controller was closed.
+            synchronized (this) {
+                if (connection == null) {
+                    throw new IOException("Fleet controller is closed.");
+                }
+                return connection;
+            }
+        }
+
+        /**
+         * Reads responses from the connection until it breaks, then fails the
+         * requests still waiting on it.
+         *
+         * @param connection the connection.
+         */
+        private void read(Connection connection) {
+            try {
+                while (true) {
+                    int id = connection.in.readInt();
+                    byte status = connection.in.readByte();
+                    String message = status == STATUS_OK ? null : connection.in.readUTF();
+                    long retryDelay = status == STATUS_CIRCUIT_OPEN ? connection.in.readLong() : 0;
+                    long retryTime = retryDelay > 0 ? System.currentTimeMillis() + retryDelay : 0; // On the local clock.
+                    Pending pending = connection.pending.remove(id);
+                    if (pending != null) {
+                        pending.status = status;
+                        pending.message = message;
+                        pending.retryTime = retryTime;
+                        pending.done.countDown();
+                    }
+                }
+            } catch (IOException e) {
+                connection.broken = true;
+                closeConnection(connection);
+                for (Pending pending : connection.pending.values()) {
+                    pending.error = new IOException("Connection with node " + node + " lost.");
+                    pending.done.countDown();
+                }
+                connection.pending.clear();
+            }
+        }
+
+        private synchronized void closeConnection(Connection current) {
+            current.close();
+            if (connection == current) {
+                connection = null;
+            }
+        }
+
+        private synchronized void close() {
+            if (connection != null) {
+                closeConnection(connection);
+            }
+        }
+
+        /**
+         * Socket connection with the node and the requests waiting on it.
+         */
+        private class Connection {
+
+            private final Socket socket;
+            private final DataInputStream in;
+            private final DataOutputStream out;
+            private final Map<Integer, Pending> pending;
+            private int nextId; // Guarded by out.
+            private volatile boolean broken;
+
+            private Connection(FleetNode node) throws IOException {
+                this.socket = new Socket();
+                socket.connect(node.getAddress(), SO_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                this.pending = new ConcurrentHashMap<>();
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        read(Connection.this);
+                    }
+                }, "fleet-" + self.getId() + "-link-" + node.getId());
+                reader.setDaemon(true);
+                reader.start();
+            }
+
+            private void close() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwarded key code waiting for its response.
+     */
+    private static class Pending {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile byte status;
+        private volatile String message;
+        private volatile long retryTime;
+        private volatile IOException error;
+    }
+
+    /**
+     * Open breaker reported by the owner node.
+     */
+    private static class RemoteCircuitOpen extends CircuitOpenException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long retryTime; // Retry time of the breaker on the owner node on the local clock, 0 when unknown.
+
+        private RemoteCircuitOpen(String message, long retryTime) {
+            super(message);
+            this.retryTime = retryTime;
+        }
+    }
+
+    /**
+     * Thrown when a key code is sent locally for a television owned by
+     * another node.
+     */
+    private static class NotOwnerException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private NotOwnerException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A controller process in a fleet, identified by a unique id and reachable by
+ * other nodes on its node-to-node address.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public final class FleetNode {
+
+    private final String id;
+    private final InetSocketAddress address;
+
+    /**
+     * Creates a fleet node.
+     *
+     * @param id the unique id of the node, used for placing it on the hash
+     * ring.
+     * @param address the address on which the node accepts forwarded
+     * commands.
+     */
+    public FleetNode(String id, InetSocketAddress address) {
+        if (id == null || address == null) {
+            throw new NullPointerException("Id and address are required.");
+        }
+        this.id = id;
+        this.address = address;
+    }
+
+    /**
+     * Returns the unique id of this node.
+     *
+     * @return the id.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the node-to-node address of this node.
+     *
+     * @return the address.
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FleetNode && ((FleetNode) o).id.equals(id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+}
@@ -26,7 +26,7 @@ import java.util.Arrays;
  */
 public class SamsungRemote {
 
-    private final int PORT = 55000;
+    private static final int PORT = 55000;
     private final int SO_TIMEOUT = 3 * 1000; // Socket connect and read timeout in milliseconds.
     private final int SO_AUTHENTICATE_TIMEOUT = 300 * 1000; // Socket read timeout while authenticating (waiting for user response) in milliseconds.
     private final String APP_STRING = "iphone.iapp.samsung";
@@ -42,6 +42,10 @@ public class SamsungRemote {
     private final BufferedReader in;
     private final boolean debug;
     private final ArrayList<String> log; // A very simple log which will be filled when debug==true and can be obtained from outside using getLog().
+    private TVState state; // Last known TV state which is updated when set, can be null.
+    private final CircuitBreaker breaker; // Can be null.
+    private boolean attempting; // Whether the breaker permitted an attempt of which the outcome is not yet recorded.
+    private long token; // Token of that attempt.
 
     /**
      * Opens a socket connection to the television.
@@ -62,11 +66,51 @@ public class SamsungRemote {
      * @throws IOException if an I/O error occurs when creating the socket.
      */
     public SamsungRemote(InetAddress host, boolean debug) throws IOException {
+        this(host, debug, null);
+    }
+
+    /**
+     * Opens a socket connection to the television when the circuit breaker
+     * allows it. Connect, authentication and key code failures are recorded
+     * with the breaker, and while it is open the connection and key codes
+     * fail fast. A successful connect is only recorded as success once the
+     * television responds to authentication or a key code.
+     *
+     * @param host the host address.
+     * @param debug whether or not to keep a log.
+     * @param breaker the circuit breaker for this television, or null.
+     * @throws CircuitOpenException if the circuit breaker is open.
+     * @throws IOException if an I/O error occurs when creating the socket.
+     */
+    public SamsungRemote(InetAddress host, boolean debug, CircuitBreaker breaker) throws IOException {
+        this(new InetSocketAddress(host, PORT), debug, breaker);
+    }
+
+    /**
+     * Opens a socket connection to the given socket address instead of port
+     * 55000, for connecting to a stand-in television in tests.
+     *
+     * @param address the socket address.
+     * @param debug whether or not to keep a log.
+     * @param breaker the circuit breaker for this television, or null.
+     * @throws IOException if an I/O error occurs when creating the socket.
+     */
+    SamsungRemote(InetSocketAddress address, boolean debug, CircuitBreaker breaker) throws IOException {
         this.debug = debug;
         this.log = new ArrayList<>();
+        this.breaker = breaker;
         this.socket = new Socket();
-        socket.connect(new InetSocketAddress(host, PORT), SO_TIMEOUT);
-        socket.setSoTimeout(SO_TIMEOUT);
+        acquire();
+        boolean connected = false;
+        try {
+            socket.connect(address, SO_TIMEOUT);
+            socket.setSoTimeout(SO_TIMEOUT);
+            connected = true;
+        } finally {
+            if (!connected) {
+                record(false);
+            }
+        }
         this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
         this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
     }
@@ -94,6 +138,7 @@ public class SamsungRemote {
     public SamsungRemote(String host, boolean debug) throws IOException {
         this.debug = debug;
         this.log = new ArrayList<>();
+        this.breaker = null;
         this.socket = new Socket();
         socket.connect(new InetSocketAddress(host, PORT), SO_TIMEOUT);
         socket.setSoTimeout(SO_TIMEOUT);
@@ -150,6 +195,29 @@ public class SamsungRemote {
      */
     public TVReply authenticate(String ip, String id, String name)
             throws IOException {
+        acquire();
+        boolean responded = false;
+        try {
+            TVReply reply = authenticateUnchecked(ip, id, name);
+            responded = true;
+            return reply;
+        } finally {
+            record(responded);
+        }
+    }
+
+    /**
+     * Authenticates with the television, without consulting the circuit
+     * breaker.
+     *
+     * @param ip a parameter for the television.
+     * @param id a parameter for the television.
+     * @param name the name for this controller.
+     * @return the response from the television.
+     * @throws IOException if an I/O error occurs.
+     */
+    private TVReply authenticateUnchecked(String ip, String id, String name)
+            throws IOException {
         emptyReaderBuffer(in);
 
         log("Authenticating with ip: " + ip + ", id: " + id + ", name: " + name + ".");
@@ -195,15 +263,25 @@ public class SamsungRemote {
      * @throws IOException if an I/O error occurs.
      */
     public void keycode(String keycode) throws IOException {
-        emptyReaderBuffer(in);
-
-        log("Sending keycode: " + keycode + ".");
-        out.write(0x00);
-        writeString(out, APP_STRING);
-        writeString(out, getKeycodePayload(keycode));
-        out.flush(); // Send key code.
-
-        readMessage(in);
+        acquire();
+        boolean delivered = false;
+        try {
+            emptyReaderBuffer(in);
+
+            log("Sending keycode: " + keycode + ".");
+            out.write(0x00);
+            writeString(out, APP_STRING);
+            writeString(out, getKeycodePayload(keycode));
+            out.flush(); // Send key code.
+
+            readMessage(in);
+            delivered = true;
+        } finally {
+            record(delivered); // A failed read already told the state, see readMessage.
+        }
+        if (state != null) {
+            state.keycodeSent(keycode);
+        }
     }
 
     /**
@@ -221,17 +299,93 @@ public class SamsungRemote {
     /**
      * Sends a key code to TV in a non-blocking manner, thus it does not check
      * the delivery (use checkConnection() to poll the TV status). Only works
-     * when you are successfully authenticated.
+     * when you are successfully authenticated. Fails fast while the circuit
+     * breaker is open. A successful send is only recorded with the breaker
+     * when it is the probe, so the breaker does not stay half-open.
      *
      * @param keycode the key code to send.
      * @throws IOException if an I/O error occurs.
      */
     public void keycodeAsync(String keycode) throws IOException {
-        log("Sending keycode without reading: " + keycode + ".");
-        out.write(0x00);
-        writeString(out, APP_STRING);
-        writeString(out, getKeycodePayload(keycode));
-        out.flush(); // Send key code.
+        acquire();
+        boolean written = false;
+        try {
+            log("Sending keycode without reading: " + keycode + ".");
+            out.write(0x00);
+            writeString(out, APP_STRING);
+            writeString(out, getKeycodePayload(keycode));
+            out.flush(); // Send key code.
+            written = true;
+        } finally {
+            if (!written) {
+                record(false);
+            } else if (isProbing()) {
+                record(true);
+            }
+        }
+        if (state != null) {
+            state.keycodeUnconfirmed(keycode);
+        }
+    }
+
+    /**
+     * Sends KEY_MUTE when needed to get the given mute state. Requires a
+     * state, see {@link #setState(TVState)}. Since KEY_MUTE toggles, nothing
+     * is sent when the mute state is unknown.
+     *
+     * @param muted whether the television should be muted.
+     * @return true when the television is now in the given mute state, false
+     * when the mute state was unknown.
+     * @throws IOException if an I/O error occurs.
+     */
+    public boolean ensureMuted(boolean muted) throws IOException {
+        Boolean current = requireState().isMuted();
+        if (current == null) {
+            log("Mute state is unknown, not sending KEY_MUTE.");
+            return false;
+        }
+        if (current != muted) {
+            keycode(Keycode.KEY_MUTE);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the source key code unless the television is known to be on that
+     * source already. Requires a state, see {@link #setState(TVState)}.
+     *
+     * @param source the source, one of {@link TVState#SOURCES}.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void ensureSource(Keycode source) throws IOException {
+        if (!TVState.SOURCES.contains(source)) {
+            throw new IllegalArgumentException(source + " does not select a source directly.");
+        }
+        if (source != requireState().getSource()) {
+            keycode(source);
+        }
+    }
+
+    /**
+     * Sends the channel digits followed by KEY_ENTER unless the television is
+     * known to be on that channel already. Requires a state, see
+     * {@link #setState(TVState)}.
+     *
+     * @param channel the channel number.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void ensureChannel(String channel) throws IOException {
+        if (!channel.matches("[0-9]+")) {
+            throw new IllegalArgumentException("Channel should be a number: " + channel + ".");
+        }
+        TVState current = requireState();
+        if (!channel.equals(current.getChannel())) {
+            current.clearChannelDigits(); // Digits left over from an earlier failed attempt.
+            for (char digit : channel.toCharArray()) {
+                keycode("KEY_" + digit);
+            }
+            keycode(Keycode.KEY_ENTER);
+        }
     }
 
     /**
@@ -308,13 +462,27 @@ public class SamsungRemote {
      * @return the payload which was sent with the message.
      */
     private char[] readMessage(Reader reader) throws IOException {
-        int first = reader.read();
+        int first;
+        try {
+            first = reader.read();
+        } catch (IOException e) {
+            if (state != null) {
+                state.connectionLost();
+            }
+            throw e;
+        }
         if (first == -1) {
+            if (state != null) {
+                state.connectionLost();
+            }
             throw new IOException("End of stream has been reached (TV could have powered off).");
         }
         String response = readString(reader);
         char[] payload = readCharArray(reader);
         log("Message: first byte: " + Integer.toHexString(first) + ", response: " + response + ", payload: " + readable(payload));
+        if (state != null && payload.length > 0 && payload[0] == 0x0a) {
+            state.notificationReceived(payload);
+        }
         return payload;
     }
 
@@ -379,6 +547,9 @@ public class SamsungRemote {
      */
     private char[] readCharArray(Reader reader) throws IOException {
         int length = reader.read();
+        if (length == -1) {
+            throw new IOException("End of stream has been reached (TV could have powered off).");
+        }
         reader.read();
         char[] charArray = new char[length];
         reader.read(charArray);
@@ -424,6 +595,88 @@ public class SamsungRemote {
         }
     }
 
+    /**
+     * Attaches a state which will be updated from the key codes sent and
+     * messages received, and is used by the ensure methods. The same state
+     * can be attached again after reconnecting to the television.
+     *
+     * @param state the state, or null to detach.
+     */
+    public void setState(TVState state) {
+        this.state = state;
+    }
+
+    /**
+     * Returns the attached state.
+     *
+     * @return the state, or null when none is attached.
+     */
+    public TVState getState() {
+        return state;
+    }
+
+    /**
+     * Returns the circuit breaker this remote was opened with.
+     *
+     * @return the breaker, or null when none is used.
+     */
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Asks the circuit breaker for permission, unless this remote is doing
+     * the probe and the breaker is still waiting for its outcome.
+     *
+     * @throws CircuitOpenException if the circuit breaker is open.
+     */
+    private void acquire() throws CircuitOpenException {
+        if (breaker == null || isProbing()) {
+            return;
+        }
+        attempting = false; // An unrecorded attempt while closed or a timed out probe is dropped.
+        token = breaker.acquire();
+        attempting = true;
+    }
+
+    /**
+     * Returns whether this remote is doing the probe of the half-open circuit
+     * breaker and its outcome has not been recorded yet.
+     *
+     * @return whether this remote is the current probe.
+     */
+    private boolean isProbing() {
+        return breaker != null && attempting && breaker.isProbe(token);
+    }
+
+    /**
+     * Records the outcome of the permitted attempt with the circuit breaker.
+     *
+     * @param success whether the television responded.
+     */
+    private void record(boolean success) {
+        if (breaker != null && attempting) {
+            attempting = false;
+            if (success) {
+                breaker.recordSuccess(token);
+            } else {
+                breaker.recordFailure(token);
+            }
+        }
+    }
+
+    /**
+     * Returns the attached state or throws when there is none.
+     *
+     * @return the state.
+     */
+    private TVState requireState() {
+        if (state == null) {
+            throw new IllegalStateException("No TV state attached, use setState() first.");
+        }
+        return state;
+    }
+
     /**
      * Closes the socket connection. Should always be called at the end of a
      * session.
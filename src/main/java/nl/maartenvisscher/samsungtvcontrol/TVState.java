@@ -0,0 +1,339 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Last known state of a television, updated from the key codes sent and
+ * messages received by a {@link SamsungRemote} it is attached to using
+ * {@link SamsungRemote#setState(TVState)}. The state can outlive a remote,
+ * so it can be attached to a new remote after reconnecting.
+ * <p>
+ * The television can not be queried, so the state is only what can be derived
+ * from our own key codes. Every value expires after the time to live, as the
+ * state can also be changed using the physical remote. An unknown or expired
+ * value is returned as null.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public class TVState {
+
+    /**
+     * Key codes which directly select a source, other source keys (like
+     * KEY_SOURCE) cycle through sources and make the source unknown.
+     */
+    public static final Set<Keycode> SOURCES = EnumSet.of(
+            Keycode.KEY_TV, Keycode.KEY_DTV,
+            Keycode.KEY_HDMI1, Keycode.KEY_HDMI2, Keycode.KEY_HDMI3, Keycode.KEY_HDMI4,
+            Keycode.KEY_AV1, Keycode.KEY_AV2, Keycode.KEY_AV3,
+            Keycode.KEY_COMPONENT1, Keycode.KEY_COMPONENT2);
+
+    private final long ttl;
+
+    private Boolean reachable;
+    private long reachableTime;
+    private Boolean poweredOn;
+    private long poweredOnTime;
+    private Boolean muted;
+    private long mutedTime;
+    private Keycode source;
+    private long sourceTime;
+    private String channel;
+    private long channelTime;
+    private final StringBuilder channelDigits; // Digits sent but not yet confirmed with KEY_ENTER.
+
+    /**
+     * Creates an unknown state of which values expire after 10 minutes.
+     */
+    public TVState() {
+        this(10 * 60 * 1000);
+    }
+
+    /**
+     * Creates an unknown state.
+     *
+     * @param ttl the time to live of the values in milliseconds.
+     */
+    public TVState(long ttl) {
+        this.ttl = ttl;
+        this.channelDigits = new StringBuilder();
+    }
+
+    /**
+     * Returns whether the television could be reached the last time.
+     *
+     * @return whether the television is reachable, or null when unknown.
+     */
+    public synchronized Boolean isReachable() {
+        return fresh(reachableTime) ? reachable : null;
+    }
+
+    /**
+     * Returns whether the television is powered on. It is only known to be
+     * powered off after a power key code was sent.
+     *
+     * @return whether the television is powered on, or null when unknown.
+     */
+    public synchronized Boolean isPoweredOn() {
+        return fresh(poweredOnTime) ? poweredOn : null;
+    }
+
+    /**
+     * Returns whether the television is muted.
+     *
+     * @return whether the television is muted, or null when unknown.
+     */
+    public synchronized Boolean isMuted() {
+        return fresh(mutedTime) ? muted : null;
+    }
+
+    /**
+     * Returns the current source as one of {@link #SOURCES}.
+     *
+     * @return the source key code, or null when unknown.
+     */
+    public synchronized Keycode getSource() {
+        return fresh(sourceTime) ? source : null;
+    }
+
+    /**
+     * Returns the current channel number.
+     *
+     * @return the channel number, or null when unknown.
+     */
+    public synchronized String getChannel() {
+        return fresh(channelTime) ? channel : null;
+    }
+
+    /**
+     * Sets the mute state, for when it is known from elsewhere. Since
+     * KEY_MUTE toggles, the mute state is unknown until this is called.
+     *
+     * @param muted whether the television is muted.
+     */
+    public synchronized void setMuted(boolean muted) {
+        this.muted = muted;
+        this.mutedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Sets the current source, for when it is known from elsewhere.
+     *
+     * @param source the source, one of {@link #SOURCES}.
+     */
+    public synchronized void setSource(Keycode source) {
+        if (!SOURCES.contains(source)) {
+            throw new IllegalArgumentException(source + " does not select a source directly.");
+        }
+        this.source = source;
+        this.sourceTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Sets the current channel number, for when it is known from elsewhere.
+     *
+     * @param channel the channel number.
+     */
+    public synchronized void setChannel(String channel) {
+        this.channel = channel;
+        this.channelTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Forgets all values, for instance when the television might have been
+     * controlled by someone else.
+     */
+    public synchronized void invalidate() {
+        reachableTime = 0;
+        poweredOnTime = 0;
+        mutedTime = 0;
+        sourceTime = 0;
+        channelTime = 0;
+        channelDigits.setLength(0);
+    }
+
+    /**
+     * Updates the state after a key code has been sent.
+     *
+     * @param keycode the key code which was sent.
+     */
+    synchronized void keycodeSent(String keycode) {
+        long now = System.currentTimeMillis();
+        setReachable(true, now);
+        poweredOn = true;
+        poweredOnTime = now;
+
+        Keycode key;
+        try {
+            key = Keycode.valueOf(keycode);
+        } catch (IllegalArgumentException e) {
+            return; // Unknown key codes like PING only tell that the TV is reachable.
+        }
+
+        if (isDigit(key)) {
+            channelDigits.append(key.name().charAt(4));
+            return;
+        }
+        if (channelDigits.length() > 0) {
+            if (key == Keycode.KEY_ENTER) {
+                channel = channelDigits.toString();
+                channelTime = now;
+                channelDigits.setLength(0);
+                return;
+            }
+            channelTime = 0; // The TV switches channel by itself after a while.
+            channelDigits.setLength(0);
+        }
+
+        switch (key) {
+            case KEY_MUTE:
+                if (fresh(mutedTime)) {
+                    muted = !muted;
+                    mutedTime = now;
+                }
+                break;
+            case KEY_POWER:
+            case KEY_POWEROFF:
+                invalidate();
+                poweredOn = false;
+                poweredOnTime = now;
+                break;
+            case KEY_CHUP:
+            case KEY_CHDOWN:
+            case KEY_PRECH:
+            case KEY_FAVCH:
+                channelTime = 0;
+                break;
+            case KEY_SOURCE:
+            case KEY_HDMI:
+            case KEY_PANNEL_SOURCE:
+                sourceTime = 0;
+                channelTime = 0;
+                break;
+            default:
+                if (SOURCES.contains(key)) {
+                    if (key != source || !fresh(sourceTime)) {
+                        channelTime = 0;
+                    }
+                    source = key;
+                    sourceTime = now;
+                }
+        }
+    }
+
+    /**
+     * Updates the state after a key code has been sent without confirmation.
+     * Since it might not have arrived, the values it could have changed are
+     * forgotten instead.
+     *
+     * @param keycode the key code which was sent.
+     */
+    synchronized void keycodeUnconfirmed(String keycode) {
+        Keycode key;
+        try {
+            key = Keycode.valueOf(keycode);
+        } catch (IllegalArgumentException e) {
+            return; // Unknown key codes like PING change nothing.
+        }
+
+        if (isDigit(key) || channelDigits.length() > 0) {
+            channelTime = 0; // A channel might have been entered partially.
+            channelDigits.setLength(0);
+            return;
+        }
+
+        switch (key) {
+            case KEY_MUTE:
+                mutedTime = 0;
+                break;
+            case KEY_POWER:
+            case KEY_POWEROFF:
+                invalidate();
+                break;
+            case KEY_CHUP:
+            case KEY_CHDOWN:
+            case KEY_PRECH:
+            case KEY_FAVCH:
+                channelTime = 0;
+                break;
+            case KEY_SOURCE:
+            case KEY_HDMI:
+            case KEY_PANNEL_SOURCE:
+                sourceTime = 0;
+                channelTime = 0;
+                break;
+            default:
+                if (SOURCES.contains(key) && (key != source || !fresh(sourceTime))) {
+                    sourceTime = 0;
+                    channelTime = 0;
+                }
+        }
+    }
+
+    /**
+     * Forgets digits which were sent but not yet confirmed with KEY_ENTER.
+     */
+    synchronized void clearChannelDigits() {
+        channelDigits.setLength(0);
+    }
+
+    /**
+     * Updates the state after an unsolicited message from the television,
+     * which only tells that it is reachable.
+     *
+     * @param payload the message payload.
+     */
+    synchronized void notificationReceived(char[] payload) {
+        setReachable(true, System.currentTimeMillis());
+    }
+
+    /**
+     * Updates the state after the connection with the television failed. The
+     * channel is forgotten, as a channel being entered might have been
+     * switched to partially.
+     */
+    synchronized void connectionLost() {
+        setReachable(false, System.currentTimeMillis());
+        channelTime = 0;
+        channelDigits.setLength(0);
+    }
+
+    /**
+     * Returns whether the key code is one of the digits KEY_0 to KEY_9.
+     *
+     * @param key the key code.
+     * @return whether it is a digit.
+     */
+    private static boolean isDigit(Keycode key) {
+        switch (key) {
+            case KEY_0:
+            case KEY_1:
+            case KEY_2:
+            case KEY_3:
+            case KEY_4:
+            case KEY_5:
+            case KEY_6:
+            case KEY_7:
+            case KEY_8:
+            case KEY_9:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void setReachable(boolean reachable, long now) {
+        this.reachable = reachable;
+        this.reachableTime = now;
+    }
+
+    /**
+     * Returns whether a value set at the given time has not yet expired.
+     *
+     * @param time the time the value was set, 0 when never set.
+     * @return whether the value is still valid.
+     */
+    private boolean fresh(long time) {
+        return time != 0 && System.currentTimeMillis() - time < ttl;
+    }
+}
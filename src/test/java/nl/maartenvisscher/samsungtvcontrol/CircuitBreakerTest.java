@@ -0,0 +1,178 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the breaker transitions, also with a television on localhost which
+ * accepts connections but breaks off every message.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public class CircuitBreakerTest {
+
+    private ServerSocket server;
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        try (Socket socket = server.accept()) {
+                            OutputStream out = socket.getOutputStream();
+                            out.write(0x00); // First byte of a message, then end of stream.
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed.
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        breaker = new CircuitBreaker(InetAddress.getLoopbackAddress(), 2, 50, 1000, 100);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void opensAfterThreshold() throws IOException {
+        breaker.recordFailure(breaker.acquire());
+        assertEquals(BreakerState.CLOSED, breaker.getState());
+        breaker.recordFailure(breaker.acquire());
+        assertEquals(BreakerState.OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            fail("Breaker should be open.");
+        } catch (CircuitOpenException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void probeClosesOrDoublesBackoff() throws Exception {
+        trip();
+        Thread.sleep(60);
+        long token = breaker.acquire();
+        assertEquals(BreakerState.HALF_OPEN, breaker.getState());
+        long before = System.currentTimeMillis();
+        breaker.recordFailure(token);
+        long after = System.currentTimeMillis();
+        assertEquals(BreakerState.OPEN, breaker.getState());
+        long retryTime = breaker.getRetryTime();
+        assertTrue("Retry time " + retryTime + " should be 100 ms after " + before + ".",
+                retryTime >= before + 100 && retryTime <= after + 100);
+
+        Thread.sleep(Math.max(retryTime - System.currentTimeMillis(), 0) + 10);
+        breaker.recordSuccess(breaker.acquire());
+        assertEquals(BreakerState.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void lostProbeOpensAgain() throws Exception {
+        trip();
+        Thread.sleep(60);
+        breaker.acquire(); // Never recorded.
+        Thread.sleep(110);
+        assertEquals(BreakerState.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void lateOutcomeIsIgnored() throws Exception {
+        trip();
+        Thread.sleep(60);
+        long token = breaker.acquire();
+        assertTrue(breaker.isProbe(token));
+        Thread.sleep(110);
+        assertFalse(breaker.isProbe(token));
+        breaker.recordSuccess(token); // Probe timed out meanwhile.
+        assertEquals(BreakerState.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void brokenAuthenticationTrips() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            SamsungRemote remote = new SamsungRemote(getAddress(), false, breaker);
+            try {
+                remote.authenticate("Test");
+                fail("Authentication should fail.");
+            } catch (IOException e) {
+                // Expected, the connect alone does not count as success.
+            } finally {
+                remote.close();
+            }
+        }
+        assertEquals(BreakerState.OPEN, breaker.getState());
+
+        Thread.sleep(60);
+        SamsungRemote remote = new SamsungRemote(getAddress(), false, breaker);
+        try {
+            remote.keycode(Keycode.KEY_INFO);
+            fail("Key code should fail.");
+        } catch (IOException e) {
+            // Expected.
+        } finally {
+            remote.close();
+        }
+        assertEquals(BreakerState.OPEN, breaker.getState()); // Not stuck half-open.
+    }
+
+    @Test
+    public void asyncKeycodeFailsFast() throws Exception {
+        SamsungRemote remote = new SamsungRemote(getAddress(), false, breaker);
+        try {
+            trip();
+            remote.keycodeAsync(Keycode.KEY_INFO);
+            fail("Breaker should be open.");
+        } catch (CircuitOpenException e) {
+            // Expected.
+        } finally {
+            remote.close();
+        }
+    }
+
+    @Test
+    public void asyncKeycodeClosesAsProbe() throws Exception {
+        trip();
+        Thread.sleep(60);
+        SamsungRemote remote = new SamsungRemote(getAddress(), false, breaker);
+        try {
+            assertEquals(BreakerState.HALF_OPEN, breaker.getState());
+            remote.keycodeAsync(Keycode.KEY_INFO);
+            assertEquals(BreakerState.CLOSED, breaker.getState()); // Not half-open until the probe times out.
+        } finally {
+            remote.close();
+        }
+    }
+
+    private void trip() throws IOException {
+        while (breaker.getState() != BreakerState.OPEN) {
+            breaker.recordFailure(breaker.acquire());
+        }
+    }
+
+    private InetSocketAddress getAddress() {
+        return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+    }
+}
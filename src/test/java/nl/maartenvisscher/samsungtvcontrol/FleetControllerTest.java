@@ -0,0 +1,452 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs several fleet nodes on localhost. All televisions are served by one
+ * stand-in television, the sessions opened by each node are recorded.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public class FleetControllerTest {
+
+    private FakeTelevision television;
+    private List<TestController> controllers;
+    private ConcurrentHashMap<InetAddress, List<String>> opened; // Node ids which opened a session, per television.
+    private volatile InetAddress stalled; // Television of which opening a session waits for the latch.
+    private volatile InetAddress unreachable; // Television of which the connection is refused.
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() throws IOException {
+        television = new FakeTelevision();
+        controllers = new ArrayList<>();
+        opened = new ConcurrentHashMap<>();
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        release.countDown();
+        for (TestController controller : controllers) {
+            controller.close();
+        }
+        television.close();
+    }
+
+    @Test
+    public void keycodesAreSentByOwner() throws IOException {
+        TestController a = start("a");
+        TestController b = start("b");
+        TestController c = start("c");
+        connect(a, b, c);
+
+        for (FleetController from : controllers) {
+            for (int i = 0; i < 30; i++) {
+                from.keycode(address(i), Keycode.KEY_INFO);
+            }
+        }
+
+        assertEquals(90, television.getKeycodes());
+        assertEquals(30, opened.size());
+        for (int i = 0; i < 30; i++) {
+            List<String> nodes = opened.get(address(i));
+            assertEquals(1, nodes.size());
+            assertEquals(a.getOwner(address(i)).getId(), nodes.get(0));
+        }
+    }
+
+    @Test
+    public void joiningNodeOnlyTakesTelevisions() throws IOException {
+        TestController a = start("a");
+        TestController b = start("b");
+        connect(a, b);
+        Map<InetAddress, FleetNode> before = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            before.put(address(i), a.getOwner(address(i)));
+        }
+
+        FleetNode c = node("c");
+        a.join(c);
+
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            FleetNode owner = a.getOwner(address(i));
+            if (!owner.equals(before.get(address(i)))) {
+                assertEquals(c, owner);
+                moved++;
+            }
+        }
+        assertTrue("Moved " + moved + " of 1000.", moved > 200 && moved < 500);
+    }
+
+    @Test
+    public void leavingNodeHandsOverTelevisions() throws IOException {
+        TestController a = start("a");
+        TestController b = start("b");
+        connect(a, b);
+        for (int i = 0; i < 20; i++) {
+            a.keycode(address(i), Keycode.KEY_INFO);
+        }
+
+        a.leave(b.getNode());
+        b.close();
+        for (int i = 0; i < 20; i++) {
+            a.keycode(address(i), Keycode.KEY_INFO);
+            List<String> nodes = opened.get(address(i));
+            assertEquals("a", nodes.get(nodes.size() - 1));
+        }
+        assertEquals(40, television.getKeycodes());
+    }
+
+    @Test
+    public void nodeRefusesTelevisionItDoesNotOwn() throws IOException {
+        TestController a = start("a");
+        TestController b = start("b");
+        FleetNode c = node("c");
+        a.join(b.getNode());
+        b.join(a.getNode());
+        b.join(c); // Node a does not know about c yet.
+
+        InetAddress moved = null;
+        for (int i = 0; moved == null; i++) {
+            if (a.getOwner(address(i)).equals(b.getNode()) && b.getOwner(address(i)).equals(c)) {
+                moved = address(i);
+            }
+        }
+        try {
+            a.keycode(moved, Keycode.KEY_INFO);
+            fail("Node b should refuse the key code.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertNull(opened.get(moved));
+        assertEquals(0, television.getKeycodes());
+    }
+
+    @Test
+    public void stalledTelevisionDoesNotBlockOthers() throws Exception {
+        final TestController a = start("a");
+        TestController b = start("b");
+        connect(a, b);
+        FleetNode c = node("c");
+        TestController joined = new TestController(c); // Not started, only shows the owners after c joins.
+        controllers.add(joined);
+        joined.join(a.getNode());
+        joined.join(b.getNode());
+        List<InetAddress> owned = new ArrayList<>();
+        for (int i = 0; owned.size() < 2; i++) {
+            if (a.getOwner(address(i)).equals(b.getNode())
+                    && joined.getOwner(address(i)).equals(owned.isEmpty() ? c : b.getNode())) {
+                owned.add(address(i));
+            }
+        }
+        stalled = owned.get(0); // Moves to c, other television stays with b.
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    a.keycode(stalled, Keycode.KEY_INFO);
+                } catch (IOException e) {
+                    // Refused when the television moved to c meanwhile.
+                }
+            }
+        });
+        sender.start();
+        while (opened.get(stalled) == null) {
+            Thread.sleep(10);
+        }
+
+        long start = System.currentTimeMillis();
+        a.keycode(owned.get(1), Keycode.KEY_INFO); // Same node link, other television.
+        b.join(c); // Rebalance does not wait for the stalled session.
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(c, b.getOwner(stalled));
+
+        release.countDown();
+        sender.join(5000);
+        assertEquals(1, television.getKeycodes());
+    }
+
+    @Test
+    public void openCircuitIsReportedToOtherNodes() throws IOException {
+        TestController a = start("a");
+        TestController b = start("b");
+        connect(a, b);
+        for (int i = 0; unreachable == null; i++) {
+            if (a.getOwner(address(i)).equals(b.getNode())) {
+                unreachable = address(i);
+            }
+        }
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                a.keycode(unreachable, Keycode.KEY_INFO);
+                fail("Connection should be refused.");
+            } catch (CircuitOpenException e) {
+                fail("Circuit should not be open yet.");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+        assertEquals(BreakerState.OPEN, b.getBreakers().get(unreachable).getState());
+        try {
+            a.keycode(unreachable, Keycode.KEY_INFO);
+            fail("Circuit should be open.");
+        } catch (CircuitOpenException e) {
+            // Expected, reported by node b.
+        }
+        assertFalse(a.isAvailable(unreachable));
+        try {
+            a.keycode(unreachable, Keycode.KEY_INFO);
+            fail("Circuit should be open.");
+        } catch (CircuitOpenException e) {
+            // Expected, without asking node b.
+        }
+        assertEquals(4, opened.get(unreachable).size()); // The last key code did not reach node b.
+    }
+
+    @Test
+    public void connectionFromOtherAddressIsDropped() throws IOException {
+        TestController a = start("a"); // Has not joined any node on localhost.
+        try (Socket socket = new Socket()) {
+            socket.connect(a.getNode().getAddress(), 3000);
+            socket.setSoTimeout(3000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(0);
+            out.writeUTF(address(0).getHostAddress());
+            out.writeUTF(Keycode.KEY_INFO.name());
+            out.flush();
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (SocketException e) {
+            // Expected, reset by node a.
+        }
+        assertNull(opened.get(address(0)));
+    }
+
+    @Test
+    public void closedControllerRefusesKeycodes() throws IOException {
+        TestController a = start("a");
+        a.close();
+        try {
+            a.keycode(address(0), Keycode.KEY_INFO);
+            fail("Closed controller should refuse the key code.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertNull(opened.get(address(0)));
+    }
+
+    /**
+     * Starts a controller which opens sessions with the stand-in television.
+     *
+     * @param id the node id.
+     * @return the started controller.
+     * @throws IOException if an I/O error occurs.
+     */
+    private TestController start(String id) throws IOException {
+        TestController controller = new TestController(node(id));
+        controller.start();
+        controllers.add(controller);
+        return controller;
+    }
+
+    /**
+     * Lets all controllers join each other.
+     *
+     * @param fleet the controllers.
+     */
+    private void connect(TestController... fleet) {
+        for (TestController controller : fleet) {
+            for (TestController other : fleet) {
+                controller.join(other.getNode());
+            }
+        }
+    }
+
+    /**
+     * Returns a node on localhost with a free port.
+     *
+     * @param id the node id.
+     * @return the node.
+     * @throws IOException if an I/O error occurs.
+     */
+    private FleetNode node(String id) throws IOException {
+        return new FleetNode(id, closedPort());
+    }
+
+    /**
+     * Returns a localhost address on which nothing listens.
+     *
+     * @return the address.
+     * @throws IOException if an I/O error occurs.
+     */
+    private InetSocketAddress closedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+        }
+    }
+
+    /**
+     * Returns a television address, it is never connected to.
+     *
+     * @param i the television number.
+     * @return the address.
+     * @throws IOException if an I/O error occurs.
+     */
+    private InetAddress address(int i) throws IOException {
+        return InetAddress.getByAddress(new byte[]{10, 0, (byte) (i >> 8), (byte) i});
+    }
+
+    /**
+     * Controller which opens sessions with the stand-in television.
+     */
+    private class TestController extends FleetController {
+
+        private final FleetNode node;
+
+        private TestController(FleetNode node) {
+            super(node, "Test");
+            this.node = node;
+        }
+
+        private FleetNode getNode() {
+            return node;
+        }
+
+        @Override
+        protected SamsungRemote openSession(InetAddress host) throws IOException {
+            opened.putIfAbsent(host, Collections.synchronizedList(new ArrayList<String>()));
+            opened.get(host).add(node.getId());
+            if (host.equals(stalled)) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted.");
+                }
+            }
+            InetSocketAddress address = host.equals(unreachable) ? closedPort() : television.getAddress();
+            SamsungRemote remote = new SamsungRemote(address, false, getBreakers().get(host));
+            remote.authenticate("Test");
+            return remote;
+        }
+    }
+
+    /**
+     * Stand-in television on localhost which allows every controller and
+     * acknowledges every key code.
+     */
+    private static class FakeTelevision {
+
+        private final ServerSocket server;
+        private final AtomicInteger keycodes;
+
+        private FakeTelevision() throws IOException {
+            this.server = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+            this.keycodes = new AtomicInteger();
+            Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    accept();
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private InetSocketAddress getAddress() {
+            return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+        }
+
+        private int getKeycodes() {
+            return keycodes.get();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    final Socket socket = server.accept();
+                    Thread handler = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                while (in.read() != -1) {
+                    read(in); // App string.
+                    byte[] payload = read(in);
+                    byte[] reply;
+                    if (payload[0] == 0x64) {
+                        reply = new byte[]{0x64, 0x00, 0x01, 0x00}; // Access granted.
+                    } else {
+                        keycodes.incrementAndGet();
+                        reply = new byte[]{0x00, 0x00, 0x00, 0x00};
+                    }
+                    byte[] message = new byte[6 + reply.length];
+                    System.arraycopy(new byte[]{0x00, 0x01, 0x00, 'x', (byte) reply.length, 0x00}, 0, message, 0, 6);
+                    System.arraycopy(reply, 0, message, 6, reply.length);
+                    out.write(message); // One write, so the reply is not delayed by Nagle's algorithm.
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Connection closed.
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+
+        private byte[] read(DataInputStream in) throws IOException {
+            int length = in.readUnsignedByte();
+            in.readUnsignedByte();
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private void close() throws IOException {
+            server.close();
+        }
+    }
+}
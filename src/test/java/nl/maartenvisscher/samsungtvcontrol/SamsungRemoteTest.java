@@ -0,0 +1,218 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the ensure methods through a remote connected to a stand-in
+ * television on localhost, which records the key codes it receives.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public class SamsungRemoteTest {
+
+    private FakeTelevision television;
+    private TVState state;
+    private SamsungRemote remote;
+
+    @Before
+    public void setUp() throws IOException {
+        television = new FakeTelevision();
+        state = new TVState();
+        remote = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        remote.close();
+        television.close();
+    }
+
+    @Test
+    public void repeatedSourceSendsNothing() throws IOException {
+        remote.ensureSource(Keycode.KEY_HDMI1);
+        remote.ensureSource(Keycode.KEY_HDMI1);
+        assertEquals(Arrays.asList("KEY_HDMI1"), television.getKeycodes());
+        remote.ensureSource(Keycode.KEY_HDMI2);
+        assertEquals(Arrays.asList("KEY_HDMI1", "KEY_HDMI2"), television.getKeycodes());
+    }
+
+    @Test
+    public void channelIsEnteredOnce() throws IOException {
+        remote.ensureChannel("12");
+        assertEquals(Arrays.asList("KEY_1", "KEY_2", "KEY_ENTER"), television.getKeycodes());
+        assertEquals("12", state.getChannel());
+        remote.ensureChannel("12");
+        assertEquals(3, television.getKeycodes().size());
+    }
+
+    @Test
+    public void unknownMuteSendsNothing() throws IOException {
+        assertFalse(remote.ensureMuted(true));
+        assertTrue(television.getKeycodes().isEmpty());
+
+        state.setMuted(false);
+        assertTrue(remote.ensureMuted(true));
+        assertTrue(remote.ensureMuted(true));
+        assertEquals(Arrays.asList("KEY_MUTE"), television.getKeycodes());
+        assertEquals(Boolean.TRUE, state.isMuted());
+    }
+
+    @Test
+    public void failedDigitResetsChannel() throws IOException {
+        state.setChannel("5");
+        television.failOn("KEY_2");
+        try {
+            remote.ensureChannel("12");
+            fail("Key code should fail.");
+        } catch (IOException e) {
+            // Expected, the television broke off the connection.
+        }
+        assertNull(state.getChannel());
+        assertEquals(Boolean.FALSE, state.isReachable());
+
+        remote.close();
+        remote = open(); // Same state after reconnecting.
+        remote.ensureChannel("34");
+        assertEquals(Arrays.asList("KEY_1", "KEY_2", "KEY_3", "KEY_4", "KEY_ENTER"), television.getKeycodes());
+        assertEquals("34", state.getChannel());
+    }
+
+    /**
+     * Opens a remote with the stand-in television and attaches the state.
+     *
+     * @return the remote.
+     * @throws IOException if an I/O error occurs.
+     */
+    private SamsungRemote open() throws IOException {
+        SamsungRemote opened = new SamsungRemote(television.getAddress(), false, null);
+        opened.authenticate("Test");
+        opened.setState(state);
+        return opened;
+    }
+
+    /**
+     * Stand-in television on localhost which allows every controller and
+     * records the key codes it receives.
+     */
+    private static class FakeTelevision {
+
+        private final ServerSocket server;
+        private final List<String> keycodes;
+        private volatile String failOn; // Key code on which the connection is broken off once.
+
+        private FakeTelevision() throws IOException {
+            this.server = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+            this.keycodes = Collections.synchronizedList(new ArrayList<String>());
+            Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    accept();
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private InetSocketAddress getAddress() {
+            return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+        }
+
+        private List<String> getKeycodes() {
+            synchronized (keycodes) {
+                return new ArrayList<>(keycodes);
+            }
+        }
+
+        private void failOn(String keycode) {
+            failOn = keycode;
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    final Socket socket = server.accept();
+                    Thread handler = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                while (in.read() != -1) {
+                    read(in); // App string.
+                    byte[] payload = read(in);
+                    byte[] reply;
+                    if (payload[0] == 0x64) {
+                        reply = new byte[]{0x64, 0x00, 0x01, 0x00}; // Access granted.
+                    } else {
+                        byte[] base64 = Arrays.copyOfRange(payload, 5, payload.length); // After 3 zeros and the length.
+                        String keycode = new String(Base64.decodeBase64(base64));
+                        keycodes.add(keycode);
+                        if (keycode.equals(failOn)) {
+                            failOn = null;
+                            return; // Received, but the connection breaks before the reply.
+                        }
+                        reply = new byte[]{0x00, 0x00, 0x00, 0x00};
+                    }
+                    byte[] message = new byte[6 + reply.length];
+                    System.arraycopy(new byte[]{0x00, 0x01, 0x00, 'x', (byte) reply.length, 0x00}, 0, message, 0, 6);
+                    System.arraycopy(reply, 0, message, 6, reply.length);
+                    out.write(message); // One write, so the reply is not delayed by Nagle's algorithm.
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Connection closed.
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+
+        private byte[] read(DataInputStream in) throws IOException {
+            int length = in.readUnsignedByte();
+            in.readUnsignedByte();
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private void close() throws IOException {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package nl.maartenvisscher.samsungtvcontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Checks how key codes and connection failures update the state.
+ *
+ * @author Maarten Visscher <mail@maartenvisscher.nl>
+ */
+public class TVStateTest {
+
+    @Test
+    public void muteTogglesKnownState() {
+        TVState state = new TVState();
+        state.keycodeSent("KEY_MUTE");
+        assertNull(state.isMuted());
+        state.setMuted(false);
+        state.keycodeSent("KEY_MUTE");
+        assertEquals(Boolean.TRUE, state.isMuted());
+    }
+
+    @Test
+    public void channelIsSetOnEnter() {
+        TVState state = new TVState();
+        state.keycodeSent("KEY_1");
+        state.keycodeSent("KEY_2");
+        assertNull(state.getChannel());
+        state.keycodeSent("KEY_ENTER");
+        assertEquals("12", state.getChannel());
+    }
+
+    @Test
+    public void connectionLostForgetsDigits() {
+        TVState state = new TVState();
+        state.setChannel("5");
+        state.keycodeSent("KEY_1");
+        state.connectionLost();
+        assertNull(state.getChannel());
+        state.keycodeSent("KEY_3");
+        state.keycodeSent("KEY_4");
+        state.keycodeSent("KEY_ENTER");
+        assertEquals("34", state.getChannel());
+    }
+
+    @Test
+    public void unconfirmedKeycodeForgetsValues() {
+        TVState state = new TVState();
+        state.setMuted(true);
+        state.setSource(Keycode.KEY_HDMI1);
+        state.setChannel("5");
+        state.keycodeUnconfirmed("KEY_VOLUP");
+        assertEquals(Boolean.TRUE, state.isMuted());
+        state.keycodeUnconfirmed("KEY_MUTE");
+        assertNull(state.isMuted());
+        assertEquals(Keycode.KEY_HDMI1, state.getSource());
+        assertEquals("5", state.getChannel());
+        state.keycodeUnconfirmed("KEY_HDMI1"); // Already on that source.
+        assertEquals("5", state.getChannel());
+        state.keycodeUnconfirmed("KEY_HDMI2");
+        assertNull(state.getSource());
+        assertNull(state.getChannel());
+    }
+
+    @Test
+    public void valuesExpire() throws InterruptedException {
+        TVState state = new TVState(10);
+        state.setMuted(true);
+        Thread.sleep(20);
+        assertNull(state.isMuted());
+    }
+}